@@ -0,0 +1,342 @@
+package com.farhad.example.reactor.netty;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import lombok.ToString;
+import lombok.extern.slf4j.Slf4j;
+import org.reactivestreams.Publisher;
+import reactor.core.publisher.Flux;
+import reactor.netty.NettyOutbound;
+import reactor.netty.DisposableServer;
+import reactor.netty.http.client.HttpClient;
+import reactor.netty.http.server.HttpServer;
+import reactor.netty.http.server.HttpServerResponse;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.buffer.ByteBufOutputStream;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.handler.codec.DelimiterBasedFrameDecoder;
+import io.netty.handler.codec.LineBasedFrameDecoder;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.json.JsonObjectDecoder;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ *
+ * Streaming JSON responses
+ *
+ * HttpEncodeAndDecodeJsonTests sends windows of JSON arrays, so the client has to re-split them with JsonObjectDecoder and every
+ * window is encoded into its own unpooled buffer. A streaming response instead serializes the Flux<T> element by element:
+ *
+ *     - application/x-ndjson: one JSON document per line, "{...}\n"
+ *
+ *     - text/event-stream: one Server-Sent Event per element, "data: {...}\n\n"
+ *
+ * Each element is written with Jackson straight into a buffer obtained from NettyOutbound.alloc(), which is the channel's (pooled)
+ * allocator, so no intermediate byte[] or String is created. The response has no Content-Length, it is sent using chunked transfer.
+ *
+ * Controlling flushes
+ *
+ * NettyOutbound.send(Publisher<? extends ByteBuf>, Predicate<ByteBuf>) takes a predicate that is asked after every buffer whether an
+ * explicit flush is needed. Every flush that reaches the socket is (at least) one write syscall, so:
+ *
+ *     - b -> true flushes each element, lowest latency but one syscall per element
+ *
+ *     - flushEvery(n) flushes once per n elements, writes are coalesced and the remainder is flushed when the Flux completes
+ *
+ * .handle((req, res) ->
+ *        res.header(HttpHeaderNames.CONTENT_TYPE, "application/x-ndjson")
+ *           .chunkedTransfer(true)
+ *           .send(pojos.map(p -> ndjsonEncoder.apply(res.alloc(), p)), flushEvery(64)))
+ *
+ * Decoding on the client
+ *
+ * The client splits the body with LineBasedFrameDecoder (NDJSON) or DelimiterBasedFrameDecoder on "\n\n" (SSE) and reads each frame
+ * with ObjectMapper through a ByteBufInputStream, so typed objects are emitted without converting the body to String.
+ *
+ * The benchmark test counts the flushes that reach the head of the server pipeline and compares flushes per element and throughput of
+ * the array-window approach with NDJSON flushed on each element and NDJSON flushed in batches.
+ *
+ */
+@Slf4j
+public class HttpStreamingJsonTests {
+
+    private static final String NDJSON = "application/x-ndjson";
+    private static final String EVENT_STREAM = "text/event-stream";
+    private static final byte[] SSE_DATA = "data: ".getBytes(StandardCharsets.US_ASCII);
+    private static final int MAX_FRAME_LENGTH = 8192;
+
+    private ObjectMapper mapper;
+    private BiFunction<ByteBufAllocator,Pojo,ByteBuf> ndjsonEncoder;
+    private BiFunction<ByteBufAllocator,Pojo,ByteBuf> sseEncoder;
+    private Function<ByteBuf,Pojo> frameDecoder;
+
+    @BeforeEach
+    public void setUp() {
+
+        mapper = new ObjectMapper();
+
+        ndjsonEncoder = (alloc, pojo) -> {
+            ByteBuf buf = alloc.buffer();
+            try {
+                mapper.writeValue((OutputStream) new ByteBufOutputStream(buf), pojo);
+                return buf.writeByte('\n');
+            } catch(Exception e) {
+                buf.release();
+                throw new RuntimeException(e);
+            }
+        };
+
+        sseEncoder = (alloc, pojo) -> {
+            ByteBuf buf = alloc.buffer();
+            try {
+                buf.writeBytes(SSE_DATA);
+                mapper.writeValue((OutputStream) new ByteBufOutputStream(buf), pojo);
+                return buf.writeByte('\n').writeByte('\n');
+            } catch(Exception e) {
+                buf.release();
+                throw new RuntimeException(e);
+            }
+        };
+
+        // The frame is released by Reactor Netty once onNext returns, so it has to be consumed synchronously
+        frameDecoder = frame -> {
+            try {
+                return mapper.readValue((InputStream) new ByteBufInputStream(frame), Pojo.class);
+            } catch(Exception e) {
+                throw new RuntimeException(e);
+            }
+        };
+    }
+
+    @Test
+    public void ndjsonStreamingTest() {
+        DisposableServer server = HttpServer
+                                        .create()
+                                        .port(0)
+                                        .handle((req,res) -> sendStream(res, NDJSON, pojos(10), ndjsonEncoder, b -> true))
+                                        .wiretap(true)
+                                        .bindNow();
+        assertNotNull(server);
+
+        List<Pojo> response = receiveNdjson(server).collectList().block();
+
+        assertNotNull(response);
+        assertEquals(10, response.size());
+        assertEquals("test 10", response.get(9).getName());
+
+        server.disposeNow();
+    }
+
+    @Test
+    public void serverSentEventsStreamingTest() {
+        DisposableServer server = HttpServer
+                                        .create()
+                                        .port(0)
+                                        .handle((req,res) -> sendStream(res, EVENT_STREAM, pojos(10), sseEncoder, flushEvery(3)))
+                                        .wiretap(true)
+                                        .bindNow();
+        assertNotNull(server);
+
+        List<Pojo> response =
+                        HttpClient.create()
+                                        .port(server.port())
+                                        // Splits the body on the blank line that terminates every event
+                                        .doOnResponse((res, conn) ->
+                                                conn.addHandlerLast(new DelimiterBasedFrameDecoder(MAX_FRAME_LENGTH,
+                                                                                                   Unpooled.wrappedBuffer(new byte[] {'\n', '\n'}))))
+                                        .wiretap(true)
+                                        .get()
+                                        .uri("/events")
+                                        .response((res, byteBufFlux) -> {
+                                            assertEquals(EVENT_STREAM, res.responseHeaders().get(HttpHeaderNames.CONTENT_TYPE));
+                                            assertEquals(HttpHeaderValues.CHUNKED.toString(),
+                                                         res.responseHeaders().get(HttpHeaderNames.TRANSFER_ENCODING));
+                                            return byteBufFlux.map(frame -> frameDecoder.apply(frame.skipBytes(SSE_DATA.length)));
+                                        })
+                                        .collectList()
+                                        .block();
+
+        assertNotNull(response);
+        assertEquals(10, response.size());
+        assertEquals("test 10", response.get(9).getName());
+
+        server.disposeNow();
+    }
+
+    @Test
+    public void streamingBenchmarkTest() {
+        int elements = 20_000;
+
+        ObjectMapper arrayMapper = new ObjectMapper();
+        Function<List<Pojo>,ByteBuf> jsonEncoder = list -> {
+            try {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                arrayMapper.writeValue(out, list);
+                return Unpooled.copiedBuffer(out.toByteArray());
+            } catch(Exception e) {
+                throw new RuntimeException(e);
+            }
+        };
+        Function<String,Pojo[]> jsonDecoder = s -> {
+            try {
+                return arrayMapper.readValue(s, Pojo[].class);
+            } catch(Exception e) {
+                throw new RuntimeException(e);
+            }
+        };
+
+        // The approach of HttpEncodeAndDecodeJsonTests: windows of 5 elements sent as JSON arrays
+        BenchmarkResult arrayWindow = benchmark("array-window", elements,
+                res -> res.send(pojos(elements).window(5)
+                                               .concatMap(w -> w.collectList().map(jsonEncoder))),
+                server -> HttpClient.create()
+                                    .port(server.port())
+                                    .doOnResponse((res, conn) -> conn.addHandlerLast(new JsonObjectDecoder()))
+                                    .get()
+                                    .uri("/test")
+                                    .response((res, byteBufFlux) ->
+                                                        byteBufFlux.asString()
+                                                                   .map(jsonDecoder)
+                                                                   .concatMap(Flux::fromArray))
+                                    .count()
+                                    .block());
+
+        BenchmarkResult flushEach = benchmark("ndjson-flush-each", elements,
+                res -> sendStream(res, NDJSON, pojos(elements), ndjsonEncoder, b -> true),
+                server -> receiveNdjson(server).count().block());
+
+        BenchmarkResult flushBatch = benchmark("ndjson-flush-batch", elements,
+                res -> sendStream(res, NDJSON, pojos(elements), ndjsonEncoder, flushEvery(64)),
+                server -> receiveNdjson(server).count().block());
+
+        // One flush per element plus the one of the response headers
+        assertTrue(flushEach.flushes >= elements);
+        assertTrue(flushBatch.flushes < flushEach.flushes);
+    }
+
+    private <T> NettyOutbound sendStream(HttpServerResponse res,
+                                      String contentType,
+                                      Flux<T> elements,
+                                      BiFunction<ByteBufAllocator,T,ByteBuf> encoder,
+                                      Predicate<ByteBuf> flushPredicate) {
+        return res.header(HttpHeaderNames.CONTENT_TYPE, contentType)
+                  .header(HttpHeaderNames.CACHE_CONTROL, HttpHeaderValues.NO_CACHE)
+                  .chunkedTransfer(true)
+                  .send(elements.map(e -> encoder.apply(res.alloc(), e)), flushPredicate);
+    }
+
+    private Flux<Pojo> receiveNdjson(DisposableServer server) {
+        return HttpClient.create()
+                         .port(server.port())
+                         // Splits the body on '\n', each frame is one JSON document
+                         .doOnResponse((res, conn) -> conn.addHandlerLast(new LineBasedFrameDecoder(MAX_FRAME_LENGTH)))
+                         .get()
+                         .uri("/ndjson")
+                         .response((res, byteBufFlux) -> {
+                             assertEquals(NDJSON, res.responseHeaders().get(HttpHeaderNames.CONTENT_TYPE));
+                             return byteBufFlux.map(frameDecoder);
+                         });
+    }
+
+    private BenchmarkResult benchmark(String name,
+                                      int elements,
+                                      Function<HttpServerResponse,Publisher<Void>> handler,
+                                      Function<DisposableServer,Long> client) {
+        FlushCounter flushCounter = new FlushCounter();
+        DisposableServer server = HttpServer
+                                        .create()
+                                        .port(0)
+                                        // First handler of the pipeline, sees every flush that is about to reach the socket
+                                        .doOnChannelInit((observer, channel, address) -> channel.pipeline().addFirst(flushCounter))
+                                        .handle((req,res) -> handler.apply(res))
+                                        .bindNow();
+        try {
+            // Warm up, then reset the counter for the measured run
+            client.apply(server);
+            flushCounter.flushes.set(0);
+
+            long start = System.nanoTime();
+            Long received = client.apply(server);
+            long elapsed = System.nanoTime() - start;
+
+            assertNotNull(received);
+            assertEquals(elements, received.longValue());
+
+            BenchmarkResult result = new BenchmarkResult(flushCounter.flushes.get(), elapsed);
+            log.info("{}: {} elements, {} flushes, {} flushes/element, {} elements/s",
+                        name,
+                        elements,
+                        result.flushes,
+                        String.format("%.3f", (double) result.flushes / elements),
+                        String.format("%.0f", elements / (elapsed / 1_000_000_000d)));
+            return result;
+        } finally {
+            server.disposeNow();
+        }
+    }
+
+    private static Flux<Pojo> pojos(int count) {
+        return Flux.range(1, count).map(i -> new Pojo("test " + i));
+    }
+
+    /**
+     * Flushes once every {@code batchSize} buffers, the state is per call so one predicate has to be created per response.
+     */
+    private static Predicate<ByteBuf> flushEvery(int batchSize) {
+        AtomicLong written = new AtomicLong();
+        return b -> written.incrementAndGet() % batchSize == 0;
+    }
+
+    @AllArgsConstructor
+    private static final class BenchmarkResult {
+
+        private final long flushes;
+        private final long elapsedNanos;
+    }
+
+    @ChannelHandler.Sharable
+    private static final class FlushCounter extends ChannelOutboundHandlerAdapter {
+
+        private final AtomicLong flushes = new AtomicLong();
+
+        @Override
+        public void flush(ChannelHandlerContext ctx) throws Exception {
+            flushes.incrementAndGet();
+            super.flush(ctx);
+        }
+    }
+
+    @NoArgsConstructor
+    @ToString
+    @Setter
+    @Getter
+    @AllArgsConstructor
+    private static final class Pojo {
+
+        private String name ;
+    }
+}